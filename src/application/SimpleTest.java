@@ -1,9 +1,21 @@
 package application;
 
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 
+import model.Operation;
+import services.AdmissionController;
 import services.DataStoreManager;
+import services.DataStoreOverloadException;
+import services.OperationFeed;
 
 /**
  * A simple test program for the {@link DataStoreManager}.
@@ -126,6 +138,13 @@ public class SimpleTest {
     check("transfer(1, 2, -500)", manager.transfer(1, 2, -500)==false);//Account would be <0
     
     check("listOperation(15)", manager.getOperations(15, null, null)==null);//Account would be <0
+
+    OperationFeed feed = manager.subscribe(0);
+    check("subscribe(0)", feed.poll(100).size() == 5);//2 deposits, 1 withdrawal, 1 transfer
+    check("subscribe(0) poll again", feed.poll(100).isEmpty());//Nothing new since
+    feed.close();
+
+    check("getBalanceAt(1, now)", manager.getBalanceAt(1, new Date()) == manager.getBalance(1));
     
     /*
     check("transfer(1, 2, 500)", manager.transfer(1, 2, 500)==false);//Account would be <0
@@ -138,6 +157,254 @@ public class SimpleTest {
 
   }
 
+  /**
+   * Runs point-in-time balance tests on the specified data store manager. The
+   * checkpoint table is inspected directly through a separate connection.
+   *
+   * @param manager
+   *          the manager to test
+   * @param url
+   *          the url of the database
+   * @param login
+   *          the login to use
+   * @param password
+   *          the password
+   * @throws Exception
+   *           if anything goes wrong
+   */
+  private static void balanceAtTests(DataStoreManager manager, String url,
+          String login, String password) throws Exception {
+
+    Connection con = DriverManager.getConnection(url, login, password);
+    try {
+      manager.checkpointBalances();
+      check("getBalancesAt({1, 2, 50}, now)", Arrays.equals(manager.getBalancesAt(new int[] { 1, 2, 50 }, new Date()),
+              new double[] { manager.getBalance(1), manager.getBalance(2), -1.0 }));//Account 50 doesn't exist
+
+      // TIMESTAMP has a 1 second resolution
+      double before = manager.getBalance(2);
+      Thread.sleep(1000);
+      Date past = new Date();
+      Thread.sleep(1000);
+      manager.addBalance(2, 50);
+      check("getBalanceAt(2, past)", manager.getBalanceAt(2, past) == before);
+      check("getBalanceAt(2, now)", manager.getBalanceAt(2, new Date()) == before + 50);
+
+      int rows = countCheckpoints(con);
+      manager.checkpointBalances();
+      check("checkpointBalances() after one change", countCheckpoints(con) == rows + 1);//Only account 2 has changed
+      manager.checkpointBalances();
+      check("checkpointBalances() without change", countCheckpoints(con) == rows + 1);
+      check("getBalanceAt(2, past) with newer checkpoint", manager.getBalanceAt(2, past) == before);
+
+      manager.pruneCheckpoints(new Date());
+      check("getBalanceAt(2, past) after prune", manager.getBalanceAt(2, past) == before);
+      check("getBalanceAt(2, now) after prune", manager.getBalanceAt(2, new Date()) == before + 50);
+    } finally {
+      con.close();
+    }
+  }
+
+  /**
+   * Returns the number of rows of the checkpoint table.
+   *
+   * @param con
+   *          the connection to use
+   * @return the number of checkpoints
+   * @throws SQLException
+   *           if the query fails
+   */
+  private static int countCheckpoints(Connection con) throws SQLException {
+    Statement stat = con.createStatement();
+    try {
+      ResultSet result = stat.executeQuery("SELECT COUNT(*) FROM balance_checkpoint");
+      result.next();
+      return result.getInt(1);
+    } finally {
+      stat.close();
+    }
+  }
+
+  /**
+   * Checks that the operation feed of the specified data store manager does
+   * not skip operations committed out of oid order: a first connection inserts
+   * an operation without committing it, then a second one inserts and commits
+   * the next operation.
+   *
+   * @param manager
+   *          the manager to test
+   * @param url
+   *          the url of the database
+   * @param login
+   *          the login to use
+   * @param password
+   *          the password
+   * @throws Exception
+   *           if anything goes wrong
+   */
+  private static void feedOrderTests(DataStoreManager manager, String url,
+          String login, String password) throws Exception {
+
+    OperationFeed feed = manager.subscribe(0);
+    while (!feed.poll(100).isEmpty()) {
+      // skip the operations of the previous tests
+    }
+
+    Connection slow = DriverManager.getConnection(url, login, password);
+    DataStoreManager fast = new DataStoreManager(url, login, password);
+    try {
+      slow.setAutoCommit(false);
+      Statement stat = slow.createStatement();
+      stat.executeUpdate("UPDATE account SET balance = balance + 10 WHERE aid = 3");
+      fast.addBalance(4, 10); // committed first, with the next oid
+
+      check("feed waits for uncommitted oid", feed.poll(100).isEmpty());
+      slow.commit();
+      List<Operation> operations = feed.poll(100);
+      check("feed delivers out-of-order commits", operations.size() == 2
+              && operations.get(0).getNumber() == 3
+              && operations.get(1).getNumber() == 4);
+      stat.close();
+    } finally {
+      slow.close();
+      fast.close();
+      feed.close();
+    }
+  }
+
+  /**
+   * Runs read-your-writes tests on a data store manager that routes its reads
+   * to the specified replica. The primary itself may be passed as the replica.
+   *
+   * @param url
+   *          the url of the primary database
+   * @param replicaUrl
+   *          the url of the replica
+   * @param login
+   *          the login to use
+   * @param password
+   *          the password
+   * @throws Exception
+   *           if anything goes wrong
+   */
+  private static void replicaTests(String url, String replicaUrl, String login,
+          String password) throws Exception {
+
+    DataStoreManager routed = new DataStoreManager(url,
+            new String[] { replicaUrl }, login, password, true);
+    try {
+      check("replica createAccount(20)", routed.createAccount(20) == true);
+      check("replica getBalance(20)", routed.getBalance(20) == 0);//Must not report a missing account
+      check("replica addBalance(20, 30)", routed.addBalance(20, 30) == 30);
+      check("replica getBalance(20) after write", routed.getBalance(20) == 30);
+      check("replica getOperations(20)", routed.getOperations(20, null, new Date()).size() == 1);
+    } finally {
+      routed.close();
+    }
+  }
+
+  /**
+   * Runs tests on the admission controller used by the data store manager.
+   * These tests do not need the database.
+   *
+   * @throws Exception
+   *           if anything goes wrong
+   */
+  private static void admissionTests() throws Exception {
+
+    // queued calls are admitted in FIFO order
+    final AdmissionController fifo = new AdmissionController("fifo", 10000);
+    long[] held = new long[10];
+    for (int i = 0; i < held.length; i++) {
+      held[i] = fifo.acquire();
+    }
+    final List<Integer> order = Collections
+            .synchronizedList(new ArrayList<Integer>());
+    List<Thread> waiters = new ArrayList<Thread>();
+    for (int i = 0; i < 3; i++) {
+      final int k = i;
+      Thread waiter = new Thread() {
+        @Override
+        public void run() {
+          try {
+            fifo.acquire();
+            order.add(k);
+          } catch (DataStoreOverloadException e) {
+            order.add(-1);
+          }
+        }
+      };
+      waiters.add(waiter);
+      waiter.start();
+      Thread.sleep(50);
+    }
+    for (int i = 0; i < 3; i++) {
+      fifo.release(held[i], true);
+      Thread.sleep(50);
+    }
+    for (Thread waiter : waiters) {
+      waiter.join();
+    }
+    check("admission FIFO order", order.equals(Arrays.asList(0, 1, 2)));
+
+    // a call that gets no slot before its deadline is rejected
+    AdmissionController deadline = new AdmissionController("deadline", 10000,
+            100, 10);
+    for (int i = 0; i < 10; i++) {
+      deadline.acquire();
+    }
+    long start = System.currentTimeMillis();
+    try {
+      deadline.acquire();
+      check("admission deadline", false);
+    } catch (DataStoreOverloadException e) {
+      check("admission deadline", System.currentTimeMillis() - start >= 100);
+    }
+
+    // a call that finds the queue full is rejected at once
+    final AdmissionController overflow = new AdmissionController("overflow",
+            10000, 1000, 1);
+    for (int i = 0; i < 10; i++) {
+      overflow.acquire();
+    }
+    Thread queued = new Thread() {
+      @Override
+      public void run() {
+        try {
+          overflow.acquire();
+        } catch (DataStoreOverloadException e) {
+          // expected: nobody releases
+        }
+      }
+    };
+    queued.start();
+    Thread.sleep(50);
+    start = System.currentTimeMillis();
+    try {
+      overflow.acquire();
+      check("admission queue overflow", false);
+    } catch (DataStoreOverloadException e) {
+      check("admission queue overflow", System.currentTimeMillis() - start < 500);
+    }
+    queued.join();
+
+    // slow calls admitted together shrink the limit once
+    AdmissionController shrink = new AdmissionController("shrink", 10);
+    for (int i = 0; i < held.length; i++) {
+      held[i] = shrink.acquire();
+    }
+    Thread.sleep(50);
+    for (int i = 0; i < held.length; i++) {
+      shrink.release(held[i], true);
+    }
+    check("admission shrinks once per round trip", shrink.getLimit() == 9.0);
+    long next = shrink.acquire();
+    Thread.sleep(50);
+    shrink.release(next, true);
+    check("admission shrinks again on next round trip",
+            Math.abs(shrink.getLimit() - 8.1) < 1e-9);
+  }
+
   //
   // MAIN
   //
@@ -162,6 +429,10 @@ public class SimpleTest {
     List<DataStoreManager> managers = new ArrayList<DataStoreManager>();
     try {
 
+      // execute tests that do not need the database
+      System.out.println("Running admission control tests...");
+      admissionTests();
+
       // create the data store manager
       manager = new DataStoreManager(args[0], args[1], args[2]);
 
@@ -174,6 +445,9 @@ public class SimpleTest {
       // execute single-user tests
       System.out.println("Running single-user tests...");
       singleUserTests(manager, "single user");
+      balanceAtTests(manager, args[0], args[1], args[2]);
+      feedOrderTests(manager, args[0], args[1], args[2]);
+      replicaTests(args[0], args[0], args[1], args[2]);
 
       // execute multi-users tests
       System.out.println("Running multi-users tests...");
@@ -0,0 +1,162 @@
+package services;
+
+import java.util.LinkedList;
+
+/**
+ * Limits the number of concurrent calls of one kind of operation issued to the
+ * data store by {@link DataStoreManager} objects.
+ * <p>
+ * The limit adapts to the observed latency (AIMD): it grows by about one call
+ * per round trip while calls succeed within the target latency, and shrinks by
+ * a constant factor when a call is slower. Each controller has its own target,
+ * which must be well above the latency of its operation without contention.
+ * The limit shrinks at most once per round trip: calls admitted before the last
+ * decrease do not decrease it again, since they were issued under the old
+ * limit. Failed calls never make the limit grow.
+ * <p>
+ * Calls beyond the limit wait in a bounded FIFO queue until a slot frees up or
+ * their deadline expires; while calls are queued, new calls queue behind them
+ * even if a slot is free. Calls that find the queue full are rejected at once.
+ * Rejected calls raise a {@link DataStoreOverloadException}.
+ */
+public class AdmissionController {
+
+  //
+  // CONSTANTS
+  //
+  private static final double INITIAL_LIMIT = 10;
+  private static final double MIN_LIMIT = 1;
+  private static final double MAX_LIMIT = 100;
+  private static final double DECREASE_FACTOR = 0.9;
+
+  private static final long WAIT_FACTOR = 5; // default deadline, in target latencies
+  private static final int MAX_QUEUE = 50;
+
+  //
+  // INSTANCE FIELDS
+  //
+  private final String operation; // the name of the controlled operation
+  private final long targetLatency; // milliseconds
+  private final long maxWait; // milliseconds
+  private final int maxQueue;
+  private double limit = INITIAL_LIMIT;
+  private int inFlight; // calls in progress
+  private final LinkedList<Object> queue = new LinkedList<Object>(); // one ticket per queued call
+  private long lastDecrease = System.nanoTime(); // when the limit last shrank
+
+  //
+  // CONSTRUCTORS
+  //
+  /**
+   * Creates a new controller for the specified operation. Calls wait for at
+   * most five times the target latency, and at most 50 calls may wait.
+   *
+   * @param operation
+   *          the name of the operation, used in error messages
+   * @param targetLatency
+   *          the latency above which the limit shrinks, in milliseconds
+   */
+  public AdmissionController(String operation, long targetLatency) {
+    this(operation, targetLatency, WAIT_FACTOR * targetLatency, MAX_QUEUE);
+  }
+
+  /**
+   * Creates a new controller for the specified operation.
+   *
+   * @param operation
+   *          the name of the operation, used in error messages
+   * @param targetLatency
+   *          the latency above which the limit shrinks, in milliseconds
+   * @param maxWait
+   *          how long a call may wait for a slot, in milliseconds
+   * @param maxQueue
+   *          how many calls may wait at the same time
+   */
+  public AdmissionController(String operation, long targetLatency,
+          long maxWait, int maxQueue) {
+    this.operation = operation;
+    this.targetLatency = targetLatency;
+    this.maxWait = maxWait;
+    this.maxQueue = maxQueue;
+  }
+
+  //
+  // METHODS
+  //
+  /**
+   * Admits a new call, waiting for a free slot if the limit is reached. Each
+   * successful call to this method must be matched by a call to
+   * {@link #release(long, boolean)}.
+   *
+   * @return the start time of the call, to pass to
+   *         {@link #release(long, boolean)}
+   * @throws DataStoreOverloadException
+   *           if the queue is full or the call could not be admitted before
+   *           its deadline
+   */
+  public synchronized long acquire() throws DataStoreOverloadException {
+    if (!queue.isEmpty() || inFlight >= (int) limit) {
+      if (queue.size() >= maxQueue) {
+        throw new DataStoreOverloadException(operation
+                + ": too many calls waiting");
+      }
+      long deadline = System.currentTimeMillis() + maxWait;
+      Object ticket = new Object();
+      queue.addLast(ticket);
+      try {
+        while (queue.getFirst() != ticket || inFlight >= (int) limit) {
+          long remaining = deadline - System.currentTimeMillis();
+          if (remaining <= 0) {
+            throw new DataStoreOverloadException(operation
+                    + ": no slot available within " + maxWait + " ms");
+          }
+          wait(remaining);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new DataStoreOverloadException(operation + ": interrupted");
+      } finally {
+        queue.remove(ticket);
+        notifyAll(); // the next call in the queue may go now
+      }
+    }
+    inFlight += 1;
+    return System.nanoTime();
+  }
+
+  /**
+   * Ends a call admitted by {@link #acquire()} and adjusts the limit according
+   * to the call's outcome and latency.
+   *
+   * @param start
+   *          the start time returned by {@link #acquire()}
+   * @param success
+   *          <code>true</code> if the call completed normally and
+   *          <code>false</code> if it failed
+   */
+  public synchronized void release(long start, boolean success) {
+    long now = System.nanoTime();
+    long latency = (now - start) / 1000000;
+    if (latency > targetLatency) {
+      if (start - lastDecrease > 0) {
+        limit = Math.max(MIN_LIMIT, limit * DECREASE_FACTOR);
+        lastDecrease = now;
+      }
+    } else if (success && inFlight >= (int) limit) {
+      // only grow when the limit is actually what holds calls back
+      limit = Math.min(MAX_LIMIT, limit + 1 / limit);
+    }
+    inFlight -= 1;
+    notifyAll();
+  }
+
+  /**
+   * Returns the current concurrency limit of this controller.
+   *
+   * @return the current limit
+   */
+  public synchronized double getLimit() {
+    return limit;
+  }
+
+}
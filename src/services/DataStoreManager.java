@@ -1,10 +1,13 @@
 package services;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import model.Operation;
 
@@ -15,6 +18,10 @@ import java.sql.*;
  * data store. The class hides the fact that data is stored in a RDBMS and all
  * the complex SQL machinery required to access it.
  * <p>
+ * Under load, the number of concurrent calls to the data store is limited per
+ * operation (see {@link AdmissionController}); calls that cannot be
+ * admitted in time fail with a {@link DataStoreOverloadException}.
+ * <p>
  * <b>Note: DO NOT alter this class' interface.</b>
  *
  * @author Jean-Michel Busca
@@ -25,7 +32,18 @@ public class DataStoreManager {
   //
   // CLASS FIELDS
   //
+	// admission control, shared by all the managers of the application; target
+	// latencies (ms) follow the number of round trips and rows of each call
+	private static final AdmissionController GET_BALANCE_ADMISSION = new AdmissionController("getBalance", 100);
+	private static final AdmissionController ADD_BALANCE_ADMISSION = new AdmissionController("addBalance", 300);
+	private static final AdmissionController TRANSFER_ADMISSION = new AdmissionController("transfer", 600);
+	private static final AdmissionController GET_OPERATIONS_ADMISSION = new AdmissionController("getOperations", 1000);
+	private static final AdmissionController GET_BALANCE_AT_ADMISSION = new AdmissionController("getBalanceAt", 500);
+
 	private Connection myCon;
+	private ReplicaRouter replicas; // null if reads go to the primary
+	private boolean readYourWrites;
+	private int lastWritePosition; // oid of the last operation written by this manager, or PRIMARY_ONLY
   // ...
 
   // example of a create table statement executed by createDB()
@@ -43,6 +61,45 @@ public class DataStoreManager {
 			+ "FOREIGN KEY (account_id) REFERENCES account(aid) "
 			+ "ON DELETE CASCADE" + ") ENGINE=InnoDB;";
 
+	// balance of each account after operation oid, taken at the specified date
+	private static final String CREATE_TABLE_CHECKPOINT = "CREATE TABLE balance_checkpoint ("
+			+ "account_id INTEGER NOT NULL,"
+			+ "oid INTEGER NOT NULL,"
+			+ "balance DOUBLE,"
+			+ "date TIMESTAMP,"
+			+ "PRIMARY KEY (account_id, oid),"
+			+ "FOREIGN KEY (account_id) REFERENCES account(aid) "
+			+ "ON DELETE CASCADE" + ") ENGINE=InnoDB;";
+
+	// only the accounts with operations since their last checkpoint; dated by
+	// the last operation, since the select may see operations after NOW()
+	private static final String INSERT_CHECKPOINTS = "INSERT INTO balance_checkpoint (account_id, oid, balance, date) "
+			+ "SELECT t.aid, t.last_oid, t.balance, o.date FROM ("
+			+ "SELECT a.aid, a.balance, "
+			+ "(SELECT MAX(o.oid) FROM operation o WHERE o.account_id = a.aid) AS last_oid, "
+			+ "(SELECT MAX(c.oid) FROM balance_checkpoint c WHERE c.account_id = a.aid) AS checkpoint_oid "
+			+ "FROM account a) t "
+			+ "JOIN operation o ON o.oid = t.last_oid "
+			+ "WHERE t.last_oid > COALESCE(t.checkpoint_oid, 0)";
+
+	// all but the latest checkpoint of each account taken before the date
+	private static final String DELETE_CHECKPOINTS = "DELETE c FROM balance_checkpoint c "
+			+ "JOIN balance_checkpoint k ON k.account_id = c.account_id AND k.oid > c.oid "
+			+ "WHERE k.date <= ?";
+
+	// balance of a set of accounts at a date: latest checkpoint at or before the
+	// date plus the operations after it, followed by "IN (?, ...) GROUP BY ..."
+	private static final String SELECT_BALANCES_AT = "SELECT a.aid, COALESCE(c.balance, 0) + COALESCE(SUM(o.amount), 0) "
+			+ "FROM account a "
+			+ "LEFT JOIN balance_checkpoint c ON c.account_id = a.aid AND c.oid = "
+			+ "(SELECT MAX(k.oid) FROM balance_checkpoint k WHERE k.account_id = a.aid AND k.date <= ?) "
+			+ "LEFT JOIN operation o ON o.account_id = a.aid AND o.oid > COALESCE(c.oid, 0) AND o.date <= ? "
+			+ "WHERE a.aid IN ";
+	private static final String GROUP_BALANCES_AT = " GROUP BY a.aid, c.balance";
+
+	// number of accounts per query and per admission in getBalancesAt()
+	private static final int BALANCES_AT_BATCH = 100;
+
 	private static final String TRIGGERS_TABLE_CHECK_BALANCE = "CREATE TRIGGER check_balance BEFORE UPDATE "
 			+ "ON account FOR EACH ROW "
 			+ "BEGIN "
@@ -57,9 +114,17 @@ public class DataStoreManager {
 			+ "ON account FOR EACH ROW "
 			+ "BEGIN "
 			+ "INSERT INTO operation (account_id, amount) VALUE (NEW.aid, NEW.balance - OLD.balance); "
+			+ "SET @last_oid = LAST_INSERT_ID(); "
 			+ "END";
 
+	// oid of the last operation inserted by the trigger on this connection
+	private static final String SELECT_LAST_OID = "SELECT @last_oid";
+
+	// read position when the last write position of this manager is unknown
+	private static final int PRIMARY_ONLY = Integer.MAX_VALUE;
+
 	private static final String DROP_TABLE_OPERATION = "DROP TABLE IF EXISTS operation";
+	private static final String DROP_TABLE_CHECKPOINT = "DROP TABLE IF EXISTS balance_checkpoint";
 	private static final String DROP_TABLE_ACCOUNT = "DROP TABLE IF EXISTS account";
 	private static final String DROP_TRIGGER_CHECK_UPDATE = "DROP TRIGGER IF EXISTS check_balance";
 	private static final String DROP_TRIGGER_INSERT_OPERATION = "DROP TRIGGER IF EXISTS insert_operation";
@@ -98,6 +163,40 @@ public class DataStoreManager {
 	}
   }
 
+  /**
+   * Creates a new <code>DataStoreManager</code> object that writes to the
+   * specified primary database and sends read-only calls (
+   * {@link #getBalance(int)} and {@link #getOperations(int, Date, Date)}) to
+   * the specified replicas, using the specified login and password.
+   * <p>
+   * Replicas are load-balanced in round-robin order; a replica on which a read
+   * fails is left aside and the read is retried on the primary. Reads also
+   * fall back to the primary when no replica is usable. With read-your-writes
+   * enabled, a replica is only used once it has applied the last operation
+   * written by this manager.
+   *
+   * @param url
+   *          the url of the primary database
+   * @param replicaUrls
+   *          the urls of the read replicas
+   * @param user
+   *          the login to use
+   * @param password
+   *          the password
+   * @param readYourWrites
+   *          <code>true</code> if reads must observe this manager's writes
+   * @throws DataStoreException
+   *           if an unrecoverable error occurs
+   */
+  public DataStoreManager(String url, String[] replicaUrls, String user,
+          String password, boolean readYourWrites) throws DataStoreException {
+	  this(url, user, password);
+	  if (replicaUrls.length > 0) {
+		  replicas = new ReplicaRouter(replicaUrls, user, password);
+	  }
+	  this.readYourWrites = readYourWrites;
+  }
+
   /**
    * Creates the schema of the bank's database. This includes all the schema
    * elements: tables, triggers, views, etc. If the database already exists,
@@ -123,12 +222,15 @@ public class DataStoreManager {
 		//DROP TABLES
 		PreparedStatement dropTable1 = myCon.prepareStatement(DROP_TABLE_OPERATION); 
 		dropTable1.executeUpdate();
+		PreparedStatement dropTable2 = myCon.prepareStatement(DROP_TABLE_CHECKPOINT);
+		dropTable2.executeUpdate();
 		PreparedStatement dropTable = myCon.prepareStatement(DROP_TABLE_ACCOUNT); 
 		dropTable.executeUpdate();
 
 		//CREATE DB
 		stat1.executeUpdate(CREATE_TABLE_ACCOUNT);
 		stat1.executeUpdate(CREATE_TABLE_OPERATION);
+		stat1.executeUpdate(CREATE_TABLE_CHECKPOINT);
 		stat1.executeUpdate(TRIGGERS_TABLE_CHECK_BALANCE);
 		stat1.executeUpdate(TRIGGERS_TABLE_INSERT_OPERATION);
 		
@@ -155,6 +257,11 @@ public class DataStoreManager {
 	  try {
 		Statement stat1 = myCon.createStatement();
 		stat1.execute("INSERT INTO `account` (`aid`, `balance`) VALUES ("+number+", 0)");
+		// no operation is written, so there is no position to wait for: read
+		// from the primary until the next addBalance() gives one, which implies
+		// the account has been replicated
+		if (readYourWrites && replicas != null)
+			lastWritePosition = PRIMARY_ONLY;
 		return true;
 	} catch (SQLException e) {
 		// TODO Auto-generated catch block
@@ -176,11 +283,30 @@ public class DataStoreManager {
    *           if an unrecoverable error occurs
    */
   public double getBalance(int number) throws DataStoreException {
-	  double balance = 0;
+	  long start = GET_BALANCE_ADMISSION.acquire();
+	  boolean success = false;
+	  try {
+		double balance;
+		Connection con = readConnection();
+		try {
+			balance = getBalance(con, number);
+		} catch (DataStoreException e) {
+			if (con == myCon)
+				throw e;
+			replicas.markDown(con); // retry on the primary
+			balance = getBalance(myCon, number);
+		}
+		success = true;
+		return balance;
+	} finally {
+		GET_BALANCE_ADMISSION.release(start, success);
+	}
+  }
 
+  private double getBalance(Connection con, int number) throws DataStoreException {
 		try {
-			
-			PreparedStatement getBalance = myCon.prepareStatement("SELECT balance FROM account WHERE aid = ?");
+
+			PreparedStatement getBalance = con.prepareStatement("SELECT balance FROM account WHERE aid = ?");
 			getBalance.setInt(1, number);
 			ResultSet result = getBalance.executeQuery();
 
@@ -215,19 +341,33 @@ public class DataStoreManager {
    *           if an unrecoverable error occurs
    */
   public double addBalance(int number, double amount) throws DataStoreException {
+	  long start = ADD_BALANCE_ADMISSION.acquire();
+	  boolean success = false;
+	  try {
+		double balance = doAddBalance(number, amount);
+		success = true;
+		return balance;
+	} finally {
+		ADD_BALANCE_ADMISSION.release(start, success);
+	}
+  }
+
+  private double doAddBalance(int number, double amount) throws DataStoreException {
 	  
 		try {
 			PreparedStatement add_balance = myCon.prepareStatement("UPDATE account SET balance = ? WHERE aid = ?");
 			double newBalance = 0;
-			newBalance = this.getBalance(number) + amount;
+			newBalance = this.getBalance(myCon, number) + amount;
 			//System.out.println("New balance : "+newBalance);
 			add_balance.setDouble(1, newBalance);
 			add_balance.setInt(2, number);
 			add_balance.executeUpdate();
-			
-			newBalance = this.getBalance(number);
+			if (readYourWrites && replicas != null)
+				lastWritePosition = getLastWritePosition();
+
+			newBalance = this.getBalance(myCon, number);
 			System.out.println("New balance AFTER : "+newBalance);
-			double balance=this.getBalance(number);
+			double balance=this.getBalance(myCon, number);
 			if (balance<0)
 				return -1.0;
 			else 
@@ -256,6 +396,19 @@ public class DataStoreManager {
    *           if an unrecoverable error occurs
    */
   public boolean transfer(int from, int to, double amount)
+          throws DataStoreException {
+	  long start = TRANSFER_ADMISSION.acquire();
+	  boolean success = false;
+	  try {
+		boolean done = doTransfer(from, to, amount);
+		success = true;
+		return done;
+	} finally {
+		TRANSFER_ADMISSION.release(start, success);
+	}
+  }
+
+  private boolean doTransfer(int from, int to, double amount)
           throws DataStoreException {
 	  
 		if(amount<0)
@@ -264,9 +417,9 @@ public class DataStoreManager {
 		}
 			
 		
-		else if (this.getBalance(from)>amount){
+		else if (this.getBalance(myCon, from)>amount){
 			
-				if (this.addBalance(from, (-1)*amount)<0)
+				if (this.doAddBalance(from, (-1)*amount)<0)
 				{
 					return false;
 				}
@@ -274,7 +427,7 @@ public class DataStoreManager {
 							
 				//Only if withdrawal succeeds
 				else{
-					if (this.addBalance(to, amount)>0)
+					if (this.doAddBalance(to, amount)>0)
 						return true;
 					
 				}
@@ -302,13 +455,35 @@ public class DataStoreManager {
    *           if an unrecoverable error occurs
    */
   public List<Operation> getOperations(int number, Date from, Date to)
+          throws DataStoreException {
+	  long start = GET_OPERATIONS_ADMISSION.acquire();
+	  boolean success = false;
+	  try {
+		List<Operation> list;
+		Connection con = readConnection();
+		try {
+			list = doGetOperations(con, number, from, to);
+		} catch (DataStoreException e) {
+			if (con == myCon)
+				throw e;
+			replicas.markDown(con); // retry on the primary
+			list = doGetOperations(myCon, number, from, to);
+		}
+		success = true;
+		return list;
+	} finally {
+		GET_OPERATIONS_ADMISSION.release(start, success);
+	}
+  }
+
+  private List<Operation> doGetOperations(Connection con, int number, Date from, Date to)
           throws DataStoreException {
 	  List<Operation> list = new ArrayList<Operation>();
 	  
 	  java.sql.Date date;
 	  
 	  try {
-		  PreparedStatement get_operations 	= myCon.prepareStatement("SELECT * FROM operation WHERE account_id = "+number);
+		  PreparedStatement get_operations 	= con.prepareStatement("SELECT * FROM operation WHERE account_id = "+number);
 			
 			ResultSet result = get_operations.executeQuery();
 			
@@ -341,7 +516,178 @@ public class DataStoreManager {
 			throw new DataStoreException(e);
 		}
 		return list;
-	 
+
+  }
+
+  /**
+   * Returns the balance of the specified account at the specified date/time.
+   * <p>
+   * The balance is rebuilt from the latest checkpoint taken at or before the
+   * date (see {@link #checkpointBalances()}), plus the operations on the
+   * account that follow the checkpoint, up to the date. Without a checkpoint,
+   * all the operations on the account up to the date are replayed.
+   *
+   * @param number
+   *          the number of the account
+   * @param date
+   *          the date/time (inclusive) of the balance
+   * @return the balance of the account at the date, or -1.0 if the account
+   *         does not exist
+   * @throws DataStoreException
+   *           if an unrecoverable error occurs
+   */
+  public double getBalanceAt(int number, Date date) throws DataStoreException {
+	  return getBalancesAt(new int[] { number }, date)[0];
+  }
+
+  /**
+   * Returns the balances of the specified accounts at the specified date/time.
+   * This is the batch version of {@link #getBalanceAt(int, Date)}: accounts are
+   * looked up by batches of up to 100, with a single query per batch.
+   *
+   * @param numbers
+   *          the numbers of the accounts
+   * @param date
+   *          the date/time (inclusive) of the balances
+   * @return the balances of the accounts at the date, in the same order as
+   *         <code>numbers</code>; -1.0 for the accounts that do not exist
+   * @throws DataStoreException
+   *           if an unrecoverable error occurs
+   */
+  public double[] getBalancesAt(int[] numbers, Date date)
+          throws DataStoreException {
+	  double[] balances = new double[numbers.length];
+
+	  // one query per batch, each admitted on its own so that a large request
+	  // does not hold a slot for longer than a single-account one
+	  for (int first = 0; first < numbers.length; first += BALANCES_AT_BATCH) {
+		int[] batch = Arrays.copyOfRange(numbers, first,
+				Math.min(first + BALANCES_AT_BATCH, numbers.length));
+		long start = GET_BALANCE_AT_ADMISSION.acquire();
+		boolean success = false;
+		try {
+			double[] part;
+			Connection con = readConnection();
+			try {
+				part = doGetBalancesAt(con, batch, date);
+			} catch (DataStoreException e) {
+				if (con == myCon)
+					throw e;
+				replicas.markDown(con); // retry on the primary
+				part = doGetBalancesAt(myCon, batch, date);
+			}
+			System.arraycopy(part, 0, balances, first, part.length);
+			success = true;
+		} finally {
+			GET_BALANCE_AT_ADMISSION.release(start, success);
+		}
+	  }
+	  return balances;
+  }
+
+  private double[] doGetBalancesAt(Connection con, int[] numbers, Date date)
+          throws DataStoreException {
+	  Map<Integer, Double> found = new HashMap<Integer, Double>();
+	  Timestamp at = new Timestamp(date.getTime());
+
+	  StringBuilder sql = new StringBuilder(SELECT_BALANCES_AT).append("(");
+	  for (int i = 0; i < numbers.length; i++) {
+		  sql.append(i == 0 ? "?" : ", ?");
+	  }
+	  sql.append(")").append(GROUP_BALANCES_AT);
+
+	  try {
+		  PreparedStatement select_balances = con.prepareStatement(sql.toString());
+		  select_balances.setTimestamp(1, at);
+		  select_balances.setTimestamp(2, at);
+		  for (int i = 0; i < numbers.length; i++) {
+			  select_balances.setInt(i + 3, numbers[i]);
+		  }
+		  ResultSet result = select_balances.executeQuery();
+		  while (result.next()) {
+			  found.put(result.getInt(1), result.getDouble(2));
+		  }
+		  result.close();
+		  select_balances.close();
+	  } catch (SQLException e) {
+		  throw new DataStoreException(e);
+	  }
+
+	  double[] balances = new double[numbers.length];
+	  for (int i = 0; i < numbers.length; i++) {
+		  Double balance = found.get(numbers[i]);
+		  balances[i] = balance != null ? balance : -1.0; // -1.0: no such account
+	  }
+	  return balances;
+  }
+
+  /**
+   * Records a checkpoint of the current balance of every account that has new
+   * operations since its last checkpoint. Checkpoints bound the number of
+   * operations {@link #getBalanceAt(int, Date)} has to replay; this method is
+   * meant to be called periodically, e.g. from a timer, together with
+   * {@link #pruneCheckpoints(Date)}.
+   *
+   * @throws DataStoreException
+   *           if an unrecoverable error occurs
+   */
+  public void checkpointBalances() throws DataStoreException {
+	  try {
+		Statement stat = myCon.createStatement();
+		stat.executeUpdate(INSERT_CHECKPOINTS);
+		stat.close();
+	} catch (SQLException e) {
+		throw new DataStoreException(e);
+	}
+  }
+
+  /**
+   * Deletes the checkpoints that are no longer needed to answer
+   * {@link #getBalanceAt(int, Date)} for dates at or after the specified date:
+   * for each account, only the latest checkpoint taken at or before the date is
+   * kept, together with all the later ones. Balances at earlier dates remain
+   * correct but are computed from the beginning of the account's history.
+   *
+   * @param before
+   *          the earliest date/time for which balance queries must stay fast
+   * @throws DataStoreException
+   *           if an unrecoverable error occurs
+   */
+  public void pruneCheckpoints(Date before) throws DataStoreException {
+	  try {
+		PreparedStatement delete_checkpoints = myCon.prepareStatement(DELETE_CHECKPOINTS);
+		delete_checkpoints.setTimestamp(1, new Timestamp(before.getTime()));
+		delete_checkpoints.executeUpdate();
+		delete_checkpoints.close();
+	} catch (SQLException e) {
+		throw new DataStoreException(e);
+	}
+  }
+
+  /**
+   * Subscribes to the operations committed to the data store, on all
+   * accounts, starting right after the specified offset. Operations are
+   * delivered in <code>oid</code> order by the returned feed; see
+   * {@link OperationFeed}.
+   * <p>
+   * This replaces polling {@link #getOperations(int, Date, Date)} for every
+   * account: each poll of the feed is a single range scan on the primary key of
+   * the <code>operation</code> table.
+   *
+   * @param offset
+   *          the oid of the last operation already consumed, as returned by
+   *          {@link OperationFeed#getOffset()}, or 0 to start from the
+   *          beginning
+   * @return the feed of the operations committed after the offset
+   * @throws DataStoreException
+   *           if an unrecoverable error occurs
+   */
+  public OperationFeed subscribe(int offset) throws DataStoreException {
+	  try {
+		return new OperationFeed(myCon, offset);
+	} catch (SQLException e) {
+		throw new DataStoreException(e);
+	}
   }
 
   /**
@@ -352,7 +698,49 @@ public class DataStoreManager {
    *           if an unrecoverable error occurs
    */
   public void close() throws DataStoreException {
-    // TODO Auto-generated method stub
+	  if (replicas != null) {
+		  replicas.close();
+	  }
+	  try {
+		myCon.close();
+	} catch (SQLException e) {
+		throw new DataStoreException(e);
+	}
+  }
+
+  /**
+   * Returns the oid of the operation just written on the primary connection,
+   * or {@link #PRIMARY_ONLY} if it cannot be read. The write is already
+   * committed at this point, so a failure here must not be reported to the
+   * caller: reads simply stay on the primary until the next write.
+   */
+  private int getLastWritePosition() {
+	  try {
+		Statement stat = myCon.createStatement();
+		try {
+			ResultSet result = stat.executeQuery(SELECT_LAST_OID);
+			if (result.next() && result.getObject(1) != null) {
+				return result.getInt(1);
+			}
+		} finally {
+			stat.close();
+		}
+	} catch (SQLException e) {
+		e.printStackTrace();
+	}
+	  return PRIMARY_ONLY;
+  }
+
+  /**
+   * Returns the connection to use for a read-only call: a replica if one is
+   * usable, and the primary otherwise.
+   */
+  private Connection readConnection() {
+	  if (replicas == null || (readYourWrites && lastWritePosition == PRIMARY_ONLY)) {
+		  return myCon;
+	  }
+	  Connection con = replicas.route(readYourWrites ? lastWritePosition : 0);
+	  return con != null ? con : myCon;
   }
 
 }
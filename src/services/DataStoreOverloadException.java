@@ -0,0 +1,30 @@
+package services;
+
+/**
+ * An exception reported by the {@link DataStoreManager} when a call is
+ * rejected by admission control, because too many calls of the same kind are
+ * already in progress or waiting. The call was not executed and may be retried
+ * later.
+ */
+public class DataStoreOverloadException extends DataStoreException {
+
+  //
+  // CONSTANTS
+  //
+  private static final long serialVersionUID = 1L;
+
+  //
+  // CONSTRUCTORS
+  //
+  /**
+   * Constructs a new exception with the specified detail message.
+   *
+   * @param message
+   *          the detail message, which is saved for later retrieval by the
+   *          Throwable.getMessage() method
+   */
+  public DataStoreOverloadException(String message) {
+    super(message);
+  }
+
+}
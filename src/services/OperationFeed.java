@@ -0,0 +1,145 @@
+package services;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import model.Operation;
+
+/**
+ * A change-data feed of the operations committed to the data store, as
+ * returned by {@link DataStoreManager#subscribe(int)}.
+ * <p>
+ * The feed tails the <code>operation</code> table in <code>oid</code> order:
+ * each call to {@link #poll(int)} runs a single range scan on the primary key,
+ * starting right after the last operation returned. The consumer controls the
+ * pace (and therefore the backpressure) by choosing when to poll and how many
+ * rows to fetch at once. The current position can be saved with
+ * {@link #getOffset()} and passed to {@link DataStoreManager#subscribe(int)}
+ * later to resume the feed.
+ * <p>
+ * Oids are allocated when operations are inserted, not when they commit, so a
+ * transaction may commit oid <i>n</i>+1 while oid <i>n</i> is still in
+ * progress. The feed therefore does not move its offset past a recent missing
+ * oid: it stops at the gap and waits for it to fill.
+ * <p>
+ * The age of a gap is judged by the server clock: the missing oid was
+ * allocated before the operation that follows it, so when that operation is
+ * older than {@link #GAP_TIMEOUT} milliseconds, the gap is assumed to be a
+ * permanent hole (rolled-back insert or deleted operation) and is skipped at
+ * once. Old holes, e.g. when replaying from an old offset, thus cost nothing.
+ * <b>Skipping can lose an operation</b>: if a transaction stays open for longer
+ * than {@link #GAP_TIMEOUT} and then commits, its operation is never
+ * delivered by a feed that already moved past it.
+ */
+public class OperationFeed {
+
+  //
+  // CONSTANTS
+  //
+  private static final String SELECT_OPERATIONS_AFTER = "SELECT oid, account_id, amount, date, NOW() FROM operation "
+          + "WHERE oid > ? ORDER BY oid LIMIT ?";
+
+  /**
+   * How old, by the server clock, the operation after a gap in the oid
+   * sequence must be before the feed skips the gap, in milliseconds.
+   */
+  public static final long GAP_TIMEOUT = 10000;
+
+  //
+  // INSTANCE FIELDS
+  //
+  private final PreparedStatement selectAfter;
+  private int offset; // the oid of the last operation returned
+
+  //
+  // CONSTRUCTOR
+  //
+  /**
+   * Creates a new feed that reads from the specified connection, starting
+   * right after the specified offset.
+   *
+   * @param con
+   *          the connection to read from
+   * @param offset
+   *          the oid of the last operation already consumed, or 0 to start
+   *          from the beginning
+   * @throws SQLException
+   *           if the query cannot be prepared
+   */
+  OperationFeed(Connection con, int offset) throws SQLException {
+    this.selectAfter = con.prepareStatement(SELECT_OPERATIONS_AFTER);
+    this.offset = offset;
+  }
+
+  //
+  // METHODS
+  //
+  /**
+   * Returns the next operations committed after the current offset, in
+   * <code>oid</code> order, and advances the offset past them. The returned
+   * list stops before the first oid that is not committed yet (see above); it
+   * is empty if no new operation can be delivered since the last call.
+   *
+   * @param maxOperations
+   *          the maximum number of operations to return (batch size)
+   * @return the next operations, at most <code>maxOperations</code>
+   * @throws DataStoreException
+   *           if an unrecoverable error occurs
+   */
+  public List<Operation> poll(int maxOperations) throws DataStoreException {
+    List<Operation> list = new ArrayList<Operation>();
+    try {
+      selectAfter.setInt(1, offset);
+      selectAfter.setInt(2, maxOperations);
+      ResultSet result = selectAfter.executeQuery();
+      while (result.next()) {
+        int oid = result.getInt(1);
+        Timestamp date = result.getTimestamp(4);
+        if (oid != offset + 1) {
+          // oid offset + 1 is either in progress or a permanent hole
+          long age = result.getTimestamp(5).getTime() - date.getTime();
+          if (age < GAP_TIMEOUT) {
+            break;
+          }
+        }
+        offset = oid;
+        list.add(new Operation(result.getInt(2), result.getDouble(3), date));
+      }
+      result.close();
+    } catch (SQLException e) {
+      throw new DataStoreException(e);
+    }
+    return list;
+  }
+
+  /**
+   * Returns the current offset of this feed, i.e. the oid of the last
+   * operation returned by {@link #poll(int)}. Pass it to
+   * {@link DataStoreManager#subscribe(int)} to resume the feed.
+   *
+   * @return the current offset
+   */
+  public int getOffset() {
+    return offset;
+  }
+
+  /**
+   * Closes this feed and releases its statement.
+   *
+   * @throws DataStoreException
+   *           if an unrecoverable error occurs
+   */
+  public void close() throws DataStoreException {
+    try {
+      selectAfter.close();
+    } catch (SQLException e) {
+      throw new DataStoreException(e);
+    }
+  }
+
+}
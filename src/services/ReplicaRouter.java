@@ -0,0 +1,218 @@
+package services;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Routes the read-only calls of a {@link DataStoreManager} to a set of read
+ * replicas.
+ * <p>
+ * Replicas are used in round-robin order. No check is made before a read: a
+ * replica is marked down when a query on it fails (see
+ * {@link #markDown(Connection)}), and a background timer reconnects down
+ * replicas every {@link #RETRY_DELAY} milliseconds, so reads never wait for a
+ * connection attempt. Replica connections have a socket timeout, so a replica
+ * that stops answering fails the read instead of blocking it. When no replica is usable, the router returns
+ * <code>null</code> and the caller falls back to the primary.
+ * <p>
+ * For read-your-writes, the router remembers the last position (oid) each
+ * replica was seen to have applied, and queries a replica's position at most
+ * once every {@link #POSITION_TTL} milliseconds.
+ */
+class ReplicaRouter {
+
+  //
+  // CONSTANTS
+  //
+  private static final int CONNECT_TIMEOUT = 1000; // milliseconds
+  private static final int SOCKET_TIMEOUT = 5000; // milliseconds
+  private static final long RETRY_DELAY = 5000; // milliseconds
+  private static final long POSITION_TTL = 100; // milliseconds
+
+  private static final String SELECT_OPERATION = "SELECT 1 FROM operation WHERE oid = ?";
+
+  //
+  // INSTANCE FIELDS
+  //
+  private final String[] urls;
+  private final Properties info; // login, password and timeouts
+  private final Connection[] cons; // null if down
+  private final int[] positions; // last position seen on each replica
+  private final long[] checkedAt; // when each position was last queried
+  private final Timer reconnector;
+  private int next; // the next replica to try
+  private boolean closed;
+
+  //
+  // CONSTRUCTOR
+  //
+  /**
+   * Creates a new router over the specified replicas. Replicas are connected
+   * in the background; reads go to the primary until they are available.
+   *
+   * @param urls
+   *          the urls of the replicas
+   * @param user
+   *          the login to use
+   * @param password
+   *          the password
+   */
+  ReplicaRouter(String[] urls, String user, String password) {
+    this.urls = urls.clone();
+    this.info = new Properties();
+    info.setProperty("user", user);
+    info.setProperty("password", password);
+    info.setProperty("connectTimeout", Integer.toString(CONNECT_TIMEOUT));
+    info.setProperty("socketTimeout", Integer.toString(SOCKET_TIMEOUT));
+    this.cons = new Connection[urls.length];
+    this.positions = new int[urls.length];
+    this.checkedAt = new long[urls.length];
+    this.reconnector = new Timer("replica-reconnect", true);
+    reconnector.schedule(new TimerTask() {
+      @Override
+      public void run() {
+        reconnect();
+      }
+    }, 0, RETRY_DELAY);
+  }
+
+  //
+  // METHODS
+  //
+  /**
+   * Returns a replica that has applied the operation at the specified position
+   * (oid), or <code>null</code> if there is none. Positions are those of the
+   * operations written by the manager, which commit in oid order, so a replica
+   * that has applied one has applied all the previous ones.
+   *
+   * @param minPosition
+   *          the oid of the operation the replica must have applied, or 0 if
+   *          any replica will do
+   * @return a replica connection, or <code>null</code> to use the primary
+   */
+  Connection route(int minPosition) {
+    for (int tried = 0; tried < cons.length; tried++) {
+      int i;
+      Connection con;
+      synchronized (this) {
+        i = next;
+        next = (next + 1) % cons.length;
+        con = cons[i];
+        if (con == null) {
+          continue;
+        }
+        if (minPosition <= positions[i]) {
+          return con;
+        }
+        long now = System.currentTimeMillis();
+        if (now - checkedAt[i] < POSITION_TTL) {
+          continue; // known to lag behind
+        }
+        checkedAt[i] = now;
+      }
+      try {
+        if (hasOperation(con, minPosition)) { // outside the lock
+          synchronized (this) {
+            if (cons[i] == con && positions[i] < minPosition) {
+              positions[i] = minPosition;
+            }
+          }
+          return con;
+        }
+      } catch (SQLException e) {
+        markDown(con);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Marks the specified replica as down, after a query on it failed. The
+   * replica will be reconnected in the background.
+   *
+   * @param con
+   *          the replica connection returned by {@link #route(int)}
+   */
+  synchronized void markDown(Connection con) {
+    for (int i = 0; i < cons.length; i++) {
+      if (cons[i] == con) {
+        markDown(i);
+      }
+    }
+  }
+
+  /**
+   * Closes all the replica connections and stops reconnecting.
+   */
+  synchronized void close() {
+    closed = true;
+    reconnector.cancel();
+    for (int i = 0; i < cons.length; i++) {
+      if (cons[i] != null) {
+        markDown(i);
+      }
+    }
+  }
+
+  //
+  // HELPER METHODS
+  //
+  private static boolean hasOperation(Connection con, int oid)
+          throws SQLException {
+    PreparedStatement select = con.prepareStatement(SELECT_OPERATION);
+    try {
+      select.setInt(1, oid);
+      ResultSet result = select.executeQuery();
+      return result.next();
+    } finally {
+      select.close();
+    }
+  }
+
+  private void markDown(int i) {
+    try {
+      cons[i].close();
+    } catch (SQLException e) {
+      // ignore: the replica is already failing
+    }
+    cons[i] = null;
+    positions[i] = 0;
+    checkedAt[i] = 0;
+  }
+
+  private void reconnect() {
+    for (int i = 0; i < urls.length; i++) {
+      synchronized (this) {
+        if (cons[i] != null) {
+          continue;
+        }
+      }
+      Connection con;
+      try {
+        con = DriverManager.getConnection(urls[i], info); // outside the lock
+      } catch (SQLException e) {
+        continue; // still down, retry later
+      }
+      synchronized (this) {
+        if (cons[i] == null && !closed) {
+          cons[i] = con;
+          con = null;
+        }
+      }
+      if (con != null) {
+        try {
+          con.close();
+        } catch (SQLException e) {
+          // ignore: the connection was not used
+        }
+      }
+    }
+  }
+
+}